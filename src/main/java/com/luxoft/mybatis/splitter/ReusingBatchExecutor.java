@@ -25,6 +25,8 @@ import org.apache.ibatis.executor.keygen.KeyGenerator;
 import org.apache.ibatis.executor.statement.StatementHandler;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.SqlSource;
 import org.apache.ibatis.session.Configuration;
 import org.apache.ibatis.session.ResultHandler;
 import org.apache.ibatis.session.RowBounds;
@@ -49,8 +51,10 @@ public class ReusingBatchExecutor extends BaseExecutor {
     private final boolean reuseBetweenFlushes;
     private final Map<PreparedStatementKey, StatementData> statementsData = new LinkedHashMap<PreparedStatementKey, StatementData>();
     private final Map<PreparedStatementKey, StatementData> unusedStatementData = new HashMap<PreparedStatementKey, StatementData>();
+    private final Map<PreparedStatementKey, StatementData> warmedUpStatementData = new HashMap<PreparedStatementKey, StatementData>();
     private PreparedStatementKey lastKey;
     private List<BatchResult> results = new ArrayList<BatchResult>();
+    private WarmUp warmUp;
 
     public ReusingBatchExecutor(Configuration configuration, Transaction transaction, boolean retainExecuteOrder, boolean reuseBetweenFlushes) {
         super(configuration, transaction);
@@ -62,7 +66,7 @@ public class ReusingBatchExecutor extends BaseExecutor {
         final Configuration configuration = ms.getConfiguration();
         final StatementHandler handler = configuration.newStatementHandler(this, ms, parameterObject, RowBounds.DEFAULT, null, null);
         final BoundSql boundSql = handler.getBoundSql();
-        PreparedStatementKey key = new PreparedStatementKey(boundSql.getSql(), ms);
+        PreparedStatementKey key = getStatementKey(ms, boundSql);
         StatementData statementData = statementsData.get(key);
         if (retainExecuteOrder && statementData != null && !key.equals(lastKey)) {
             statementData = null;
@@ -70,10 +74,21 @@ public class ReusingBatchExecutor extends BaseExecutor {
         }
         if (statementData == null) {
             statementData = unusedStatementData.remove(key);
+            if (statementData == null) {
+                statementData = warmedUpStatementData.remove(key);
+            }
             if (statementData == null) {
                 Connection connection = getConnection(ms.getStatementLog());
-                Statement stmt = handler.prepare(connection);
-                statementData = new StatementData(stmt);
+                if (warmUp != null) {
+                    WarmUp pendingWarmUp = warmUp;
+                    warmUp = null;
+                    pendingWarmUp.warmUp(this);
+                    statementData = warmedUpStatementData.remove(key);
+                }
+                if (statementData == null) {
+                    Statement stmt = handler.prepare(connection);
+                    statementData = new StatementData(stmt);
+                }
             }
             statementsData.put(key, statementData);
         }
@@ -84,6 +99,55 @@ public class ReusingBatchExecutor extends BaseExecutor {
         return BATCH_UPDATE_RETURN_VALUE;
     }
 
+    /**
+     * Prepares statement for given key in advance, so that it is reused by first update with this key. Such statement
+     * is kept over flushes until it's used or executor is closed.
+     */
+    public void prepareStatement(PreparedStatementKey key) throws SQLException {
+        if (statementsData.containsKey(key) || unusedStatementData.containsKey(key)
+                || warmedUpStatementData.containsKey(key)) {
+            return;
+        }
+        MappedStatement ms = key.getMappedStatement();
+        BoundSql boundSql = new BoundSql(configuration, key.getSql(), Collections.<ParameterMapping>emptyList(), null);
+        StatementHandler handler = configuration.newStatementHandler(this, ms, null, RowBounds.DEFAULT, null, boundSql);
+        Statement stmt = handler.prepare(getConnection(ms.getStatementLog()));
+        warmedUpStatementData.put(key, new StatementData(stmt));
+    }
+
+    /**
+     * @param warmUp called once when first update obtains connection. It runs before that update, so the update
+     *               waits for every statement warm up prepares, including ones the session won't use. Statements
+     *               prepared by it stay open until used or until executor is closed
+     */
+    public void setWarmUp(WarmUp warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    @Override
+    public void close(boolean forceRollback) {
+        for (StatementData stmt : warmedUpStatementData.values()) {
+            closeStatement(stmt.getStatement());
+        }
+        warmedUpStatementData.clear();
+        super.close(forceRollback);
+    }
+
+    /**
+     * Uses key precomputed by {@link UpdateSplitterPlugin} when sql was not changed since. Such keys are shared
+     * between updates, so map lookups and {@link #lastKey} comparison end on identity check with cached hash code.
+     */
+    private PreparedStatementKey getStatementKey(MappedStatement ms, BoundSql boundSql) {
+        SqlSource sqlSource = ms.getSqlSource();
+        if (sqlSource instanceof SwitchingSqlSource) {
+            PreparedStatementKey key = ((SwitchingSqlSource) sqlSource).getStatementKey();
+            if (key != null && key.getMappedStatement() == ms && key.getSql() == boundSql.getSql()) {
+                return key;
+            }
+        }
+        return new PreparedStatementKey(boundSql.getSql(), ms);
+    }
+
     public <E> List<E> doQuery(MappedStatement ms, Object parameterObject, RowBounds rowBounds, ResultHandler resultHandler, BoundSql boundSql)
             throws SQLException {
         Statement stmt = null;
@@ -170,6 +234,10 @@ public class ReusingBatchExecutor extends BaseExecutor {
         }
     }
 
+    public interface WarmUp {
+        void warmUp(ReusingBatchExecutor executor);
+    }
+
     public static class PreparedStatementKey {
         private final String sql;
         private final MappedStatement mappedStatement;
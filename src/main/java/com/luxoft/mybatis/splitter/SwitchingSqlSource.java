@@ -31,6 +31,7 @@ class SwitchingSqlSource implements SqlSource {
     private String sql;
     private List<ParameterMapping> parameterMappings;
     private BoundSql parentBoundSql;
+    private ReusingBatchExecutor.PreparedStatementKey statementKey;
 
     SwitchingSqlSource(Configuration configuration) {
         this.configuration = configuration;
@@ -60,10 +61,25 @@ class SwitchingSqlSource implements SqlSource {
         this.sql = sql;
         this.parentBoundSql = parentBoundSql;
         this.parameterMappings = parameterMappings;
+        this.statementKey = null;
+    }
+
+    public void switchParams(ReusingBatchExecutor.PreparedStatementKey statementKey, BoundSql parentBoundSql,
+                             List<ParameterMapping> parameterMappings) {
+        switchParams(statementKey.getSql(), parentBoundSql, parameterMappings);
+        this.statementKey = statementKey;
+    }
+
+    /**
+     * @return precomputed key for current sql, or null if sql was switched without one
+     */
+    public ReusingBatchExecutor.PreparedStatementKey getStatementKey() {
+        return statementKey;
     }
 
     public void setSql(String sql) {
         this.sql = sql;
+        this.statementKey = null;
     }
 
     public void setParameterMappings(List<ParameterMapping> parameterMappings) {
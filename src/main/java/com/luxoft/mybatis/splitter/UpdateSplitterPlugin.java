@@ -18,15 +18,26 @@
 package com.luxoft.mybatis.splitter;
 
 import org.apache.ibatis.executor.*;
+import org.apache.ibatis.builder.StaticSqlSource;
 import org.apache.ibatis.executor.statement.StatementHandler;
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.MappedStatement;
 import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.scripting.defaults.RawSqlSource;
+import org.apache.ibatis.scripting.xmltags.DynamicSqlSource;
+import org.apache.ibatis.scripting.xmltags.MixedSqlNode;
+import org.apache.ibatis.scripting.xmltags.SqlNode;
+import org.apache.ibatis.scripting.xmltags.TextSqlNode;
 import org.apache.ibatis.plugin.*;
 import org.apache.ibatis.session.Configuration;
 import org.apache.ibatis.session.RowBounds;
 
 import java.lang.reflect.Field;
+import java.sql.SQLException;
 import java.util.*;
 
 /**
@@ -44,16 +55,33 @@ public class UpdateSplitterPlugin implements Interceptor{
     public static final String REUSE_PREPARED_STATEMENTS_PROPERTY = "reusePreparedStatements";
     public static final String REUSE_BETWEEN_FLUSHES_PROPERTY = "reuseBetweenFlushes";
     public static final String RETAIN_EXECUTE_ORDER_PROPERTY = "retainExecuteOrder";
+    /**
+     * Comma separated ids of static insert, update or delete statements to prepare when a batch session runs its
+     * first update. That update pays for preparing all of them, so list only statements most sessions use.
+     */
+    public static final String WARM_UP_STATEMENTS_PROPERTY = "warmUpStatements";
     public static final String MSG_ERROR_ACCESSING_CONFIGURATION = "Can't access executor configuration field. Please set reusePreparedStatements to false";
     public static final String MSG_ERROR_ACCESSING_DELEGATE = "Can't access executor delegate field. Please set reusePreparedStatements to false";
+    public static final String MSG_ERROR_ACCESSING_FLUSH_CACHE_REQUIRED = "Can't access statement flushCacheRequired field";
+    public static final String MSG_ERROR_UNKNOWN_WARM_UP_STATEMENT = "Unknown warm up statement ";
+    public static final String MSG_ERROR_DYNAMIC_WARM_UP_STATEMENT = "Only statements with sql independent of parameter can be warmed up, got ";
+    public static final String MSG_ERROR_NOT_UPDATE_WARM_UP_STATEMENT = "Only insert, update or delete statements can be warmed up, got ";
+    private static final Log log = LogFactory.getLog(UpdateSplitterPlugin.class);
     private TextSplitter splitter;
     private boolean skipEmptyStatements = true;
     private boolean reusePreparedStatements = true;
     private boolean reuseBetweenFlushes = false;
     private boolean retainExecuteOrder = false;
+    private List<String> warmUpStatements = Collections.emptyList();
+    private volatile List<MappedStatement> resolvedWarmUpStatements;
     private Field executorConfiguration;
     private Field cachingExecutorDelegate;
+    private Field statementFlushCacheRequired;
+    private Field dynamicSqlSourceRootNode;
+    private Field mixedSqlNodeContents;
+    private Field textSqlNodeText;
     private Map<MappedStatement, MappedStatement> subStatements = new HashMap<MappedStatement, MappedStatement>();
+    private Map<MappedStatement, SplitPlan> splitPlans = new HashMap<MappedStatement, SplitPlan>();
 
     public UpdateSplitterPlugin() {
         this(new DelimiterSplitter(";"));
@@ -68,6 +96,14 @@ public class UpdateSplitterPlugin implements Interceptor{
         this.skipEmptyStatements = skipEmptyStatements;
     }
 
+    private UpdateSplitterPlugin(UpdateSplitterPlugin parent) {
+        this(parent.splitter, parent.skipEmptyStatements);
+        this.statementFlushCacheRequired = parent.statementFlushCacheRequired;
+        this.dynamicSqlSourceRootNode = parent.dynamicSqlSourceRootNode;
+        this.mixedSqlNodeContents = parent.mixedSqlNodeContents;
+        this.textSqlNodeText = parent.textSqlNodeText;
+    }
+
     @Override
     public Object intercept(Invocation invocation) throws Throwable {
         MappedStatement ms = (MappedStatement) invocation.getArgs()[0];
@@ -76,33 +112,18 @@ public class UpdateSplitterPlugin implements Interceptor{
         final StatementHandler handler = configuration.newStatementHandler((Executor) invocation.getTarget(),
                 ms, parameterObject, RowBounds.DEFAULT, null, null);
         final BoundSql boundSql = handler.getBoundSql();
-        final String sql = boundSql.getSql();
-        List<String> splitted = splitter.split(sql);
         int rc = 0;
         List<ParameterMapping> fullParameterMappings = new ArrayList<ParameterMapping>(boundSql.getParameterMappings());
-        for (String sqlPart: splitted) {
-            if (skipEmptyStatements && sqlPart.length() == 0) {
-                continue;
-            }
-            int numParams = 0;
-            for (int index = sqlPart.indexOf('?'); index >=0; index = sqlPart.indexOf('?', index + 1)) {
-                numParams++;
-            }
-            MappedStatement subStatement = subStatements.get(ms);
-            if (subStatement == null) {
-                subStatement = new MappedStatement.Builder(
-                    ms.getConfiguration(), ms.getId(), new SwitchingSqlSource(configuration), ms.getSqlCommandType())
-                    .cache(ms.getCache())
-                    .databaseId(ms.getDatabaseId())
-                    .fetchSize(ms.getFetchSize())
-                    .timeout(ms.getTimeout())
-                    .flushCacheRequired(ms.isFlushCacheRequired())
-                    .useCache(ms.isUseCache())
-                    .build();
-                subStatements.put(ms, subStatement);
-            }
-            List<ParameterMapping> subParameterMappings = fullParameterMappings.subList(0, numParams);
-            ((SwitchingSqlSource)subStatement.getSqlSource()).switchParams(sqlPart, boundSql,
+        // Parent cache is flushed once per update by the first fragment rather than once per fragment
+        boolean flushPending = statementFlushCacheRequired != null && configuration.isCacheEnabled()
+                && ms.getCache() != null && ms.isFlushCacheRequired();
+        MappedStatement subStatement = getSubStatement(ms);
+        SplitPlan plan = getSplitPlan(ms, subStatement, boundSql.getSql());
+        for (int fragment = 0; fragment < plan.keys.length; fragment++) {
+            setFlushCacheRequired(subStatement, flushPending);
+            flushPending = false;
+            List<ParameterMapping> subParameterMappings = fullParameterMappings.subList(0, plan.paramCounts[fragment]);
+            ((SwitchingSqlSource)subStatement.getSqlSource()).switchParams(plan.keys[fragment], boundSql,
                     new ArrayList<ParameterMapping>(subParameterMappings));
             subParameterMappings.clear();
             int subRc = (Integer)invocation.getMethod().invoke(invocation.getTarget(), subStatement, parameterObject);
@@ -113,30 +134,181 @@ public class UpdateSplitterPlugin implements Interceptor{
         return rc;
     }
 
+    private MappedStatement getSubStatement(MappedStatement ms) {
+        MappedStatement subStatement = subStatements.get(ms);
+        if (subStatement == null) {
+            subStatement = new MappedStatement.Builder(
+                ms.getConfiguration(), ms.getId(), new SwitchingSqlSource(ms.getConfiguration()), ms.getSqlCommandType())
+                .cache(ms.getCache())
+                .databaseId(ms.getDatabaseId())
+                .fetchSize(ms.getFetchSize())
+                .timeout(ms.getTimeout())
+                .flushCacheRequired(statementFlushCacheRequired == null && ms.isFlushCacheRequired())
+                .useCache(false)
+                .build();
+            subStatements.put(ms, subStatement);
+        }
+        return subStatement;
+    }
+
+    private void setFlushCacheRequired(MappedStatement subStatement, boolean flushCacheRequired) {
+        if (statementFlushCacheRequired != null && subStatement.isFlushCacheRequired() != flushCacheRequired) {
+            try {
+                statementFlushCacheRequired.setBoolean(subStatement, flushCacheRequired);
+            } catch (IllegalAccessException e) {
+                throw new ExecutorException(MSG_ERROR_ACCESSING_FLUSH_CACHE_REQUIRED, e);
+            }
+        }
+    }
+
+    /**
+     * Returns fragments of given sql with same key instances for same fragments, so that executor can route them
+     * by identity instead of hashing and comparing whole sql. Plan of a static statement, or of a dynamic one that
+     * gave same sql instance again, is reused without any string work.
+     */
+    private SplitPlan getSplitPlan(MappedStatement ms, MappedStatement subStatement, String sql) {
+        SplitPlan plan = splitPlans.get(ms);
+        if (plan != null && (plan.staticSql || plan.sql == sql)) {
+            return plan;
+        }
+        List<ReusingBatchExecutor.PreparedStatementKey> keys = new ArrayList<ReusingBatchExecutor.PreparedStatementKey>();
+        for (String sqlPart: splitter.split(sql)) {
+            if (skipEmptyStatements && sqlPart.length() == 0) {
+                continue;
+            }
+            int fragment = keys.size();
+            ReusingBatchExecutor.PreparedStatementKey key;
+            if (plan != null && fragment < plan.keys.length && plan.keys[fragment].getSql().equals(sqlPart)) {
+                key = plan.keys[fragment];
+            } else if (fragment > 0 && keys.get(fragment - 1).getSql().equals(sqlPart)) {
+                key = keys.get(fragment - 1);
+            } else {
+                key = new ReusingBatchExecutor.PreparedStatementKey(sqlPart, subStatement);
+            }
+            keys.add(key);
+        }
+        plan = new SplitPlan(sql, keys.toArray(new ReusingBatchExecutor.PreparedStatementKey[keys.size()]),
+                plan != null ? plan.staticSql : isStatic(ms.getSqlSource()));
+        splitPlans.put(ms, plan);
+        return plan;
+    }
+
+    /**
+     * Prepares fragments of given statements in executor, so that first update of each does not wait for it.
+     * Failure to prepare is only logged, it will be reported by the update itself if it's not transient.
+     */
+    private void warmUp(ReusingBatchExecutor executor, List<MappedStatement> statements) {
+        for (MappedStatement ms: statements) {
+            try {
+                for (ReusingBatchExecutor.PreparedStatementKey key:
+                        getSplitPlan(ms, getSubStatement(ms), ms.getBoundSql(null).getSql()).keys) {
+                    executor.prepareStatement(key);
+                }
+            } catch (Exception e) {
+                log.warn("Can't warm up statement " + ms.getId() + ": " + e);
+            }
+        }
+    }
+
+    private List<MappedStatement> getWarmUpStatements(Configuration configuration) {
+        List<MappedStatement> statements = resolvedWarmUpStatements;
+        if (statements == null) {
+            statements = resolveWarmUpStatements(configuration);
+            resolvedWarmUpStatements = statements;
+        }
+        return statements;
+    }
+
+    private List<MappedStatement> resolveWarmUpStatements(Configuration configuration) {
+        List<MappedStatement> statements = new ArrayList<MappedStatement>();
+        for (String statementId: warmUpStatements) {
+            if (!configuration.hasStatement(statementId)) {
+                throw new ExecutorException(MSG_ERROR_UNKNOWN_WARM_UP_STATEMENT + statementId);
+            }
+            MappedStatement ms = configuration.getMappedStatement(statementId);
+            SqlCommandType sqlCommandType = ms.getSqlCommandType();
+            if (sqlCommandType != SqlCommandType.INSERT && sqlCommandType != SqlCommandType.UPDATE
+                    && sqlCommandType != SqlCommandType.DELETE) {
+                throw new ExecutorException(MSG_ERROR_NOT_UPDATE_WARM_UP_STATEMENT + statementId);
+            }
+            if (!isStatic(ms.getSqlSource())) {
+                throw new ExecutorException(MSG_ERROR_DYNAMIC_WARM_UP_STATEMENT + statementId);
+            }
+            statements.add(ms);
+        }
+        return statements;
+    }
+
+    /**
+     * XML statements are always parsed into {@link DynamicSqlSource}, so it's static when it holds only text without
+     * substitutions.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean isStatic(SqlSource sqlSource) {
+        if (sqlSource instanceof RawSqlSource || sqlSource instanceof StaticSqlSource) {
+            return true;
+        }
+        if (!(sqlSource instanceof DynamicSqlSource) || textSqlNodeText == null) {
+            return false;
+        }
+        try {
+            SqlNode rootSqlNode = (SqlNode) dynamicSqlSourceRootNode.get(sqlSource);
+            List<SqlNode> sqlNodes = rootSqlNode instanceof MixedSqlNode
+                    ? (List<SqlNode>) mixedSqlNodeContents.get(rootSqlNode)
+                    : Collections.singletonList(rootSqlNode);
+            for (SqlNode sqlNode: sqlNodes) {
+                if (!(sqlNode instanceof TextSqlNode) || ((String) textSqlNodeText.get(sqlNode)).contains("${")) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+    }
+
     @Override
     public Object plugin(Object target) {
+        ReusingBatchExecutor reusingExecutor = null;
         if (reusePreparedStatements && target instanceof BatchExecutor) {
-            target = replaceBatchExecutor((BatchExecutor) target);
+            reusingExecutor = replaceBatchExecutor((BatchExecutor) target);
+            target = reusingExecutor;
         }
         if (reusePreparedStatements && target instanceof CachingExecutor) {
             try {
                 Object delegate = cachingExecutorDelegate.get(target);
                 if (delegate instanceof BatchExecutor) {
-                    cachingExecutorDelegate.set(target, replaceBatchExecutor((BatchExecutor) delegate));
+                    reusingExecutor = replaceBatchExecutor((BatchExecutor) delegate);
+                    cachingExecutorDelegate.set(target, reusingExecutor);
                 }
             } catch (IllegalAccessException e) {
                 throw new ExecutorException(MSG_ERROR_ACCESSING_DELEGATE, e);
             }
         }
-        return target instanceof Executor
-                ? Plugin.wrap(target, new UpdateSplitterPlugin(splitter, skipEmptyStatements))
-                : target;
+        if (!(target instanceof Executor)) {
+            return target;
+        }
+        final UpdateSplitterPlugin executorPlugin = new UpdateSplitterPlugin(this);
+        if (reusingExecutor != null && !warmUpStatements.isEmpty()) {
+            final List<MappedStatement> statements = getWarmUpStatements(getConfiguration(reusingExecutor));
+            reusingExecutor.setWarmUp(new ReusingBatchExecutor.WarmUp() {
+                @Override
+                public void warmUp(ReusingBatchExecutor executor) {
+                    executorPlugin.warmUp(executor, statements);
+                }
+            });
+        }
+        return Plugin.wrap(target, executorPlugin);
+    }
+
+    private ReusingBatchExecutor replaceBatchExecutor(BatchExecutor target) {
+        return new ReusingBatchExecutor(getConfiguration(target), target.getTransaction(),
+                retainExecuteOrder, reuseBetweenFlushes);
     }
 
-    private Object replaceBatchExecutor(BatchExecutor target) {
+    private Configuration getConfiguration(BaseExecutor executor) {
         try {
-            return new ReusingBatchExecutor((Configuration) executorConfiguration.get(target),
-                    target.getTransaction(), retainExecuteOrder, reuseBetweenFlushes);
+            return (Configuration) executorConfiguration.get(executor);
         } catch (IllegalAccessException e) {
             throw new ExecutorException(MSG_ERROR_ACCESSING_CONFIGURATION, e);
         }
@@ -156,6 +328,26 @@ public class UpdateSplitterPlugin implements Interceptor{
         retainExecuteOrder = getBooleanProperty(properties, RETAIN_EXECUTE_ORDER_PROPERTY, retainExecuteOrder);
         reusePreparedStatements = getBooleanProperty(properties, REUSE_PREPARED_STATEMENTS_PROPERTY, reusePreparedStatements);
         reuseBetweenFlushes = getBooleanProperty(properties, REUSE_BETWEEN_FLUSHES_PROPERTY, reuseBetweenFlushes);
+        property = properties.getProperty(WARM_UP_STATEMENTS_PROPERTY);
+        if (property != null) {
+            warmUpStatements = new ArrayList<String>();
+            for (String statementId: property.split(",")) {
+                if (statementId.trim().length() != 0) {
+                    warmUpStatements.add(statementId.trim());
+                }
+            }
+        }
+        try {
+            dynamicSqlSourceRootNode = DynamicSqlSource.class.getDeclaredField("rootSqlNode");
+            dynamicSqlSourceRootNode.setAccessible(true);
+            mixedSqlNodeContents = MixedSqlNode.class.getDeclaredField("contents");
+            mixedSqlNodeContents.setAccessible(true);
+            textSqlNodeText = TextSqlNode.class.getDeclaredField("text");
+            textSqlNodeText.setAccessible(true);
+        } catch (Exception e) {
+            // only statements with raw sql source are treated as static then
+            textSqlNodeText = null;
+        }
         if (reusePreparedStatements) {
             try {
                 executorConfiguration = BaseExecutor.class.getDeclaredField("configuration");
@@ -170,6 +362,13 @@ public class UpdateSplitterPlugin implements Interceptor{
                 throw new ExecutorException(MSG_ERROR_ACCESSING_DELEGATE, e);
             }
         }
+        try {
+            statementFlushCacheRequired = MappedStatement.class.getDeclaredField("flushCacheRequired");
+            statementFlushCacheRequired.setAccessible(true);
+        } catch (Exception e) {
+            // every fragment flushes cache then
+            statementFlushCacheRequired = null;
+        }
     }
 
     private boolean getBooleanProperty(Properties properties, String name, boolean def) {
@@ -178,4 +377,24 @@ public class UpdateSplitterPlugin implements Interceptor{
         return property != null ? Boolean.parseBoolean(property) : def;
     }
 
+    private static class SplitPlan {
+        private final String sql;
+        private final ReusingBatchExecutor.PreparedStatementKey[] keys;
+        private final int[] paramCounts;
+        private final boolean staticSql;
+
+        private SplitPlan(String sql, ReusingBatchExecutor.PreparedStatementKey[] keys, boolean staticSql) {
+            this.sql = sql;
+            this.keys = keys;
+            this.staticSql = staticSql;
+            paramCounts = new int[keys.length];
+            for (int fragment = 0; fragment < keys.length; fragment++) {
+                String sqlPart = keys[fragment].getSql();
+                for (int index = sqlPart.indexOf('?'); index >=0; index = sqlPart.indexOf('?', index + 1)) {
+                    paramCounts[fragment]++;
+                }
+            }
+        }
+    }
+
 }
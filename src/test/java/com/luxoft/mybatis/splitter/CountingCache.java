@@ -0,0 +1,39 @@
+/*
+   Copyright 2014 Luxoft
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+
+ */
+package com.luxoft.mybatis.splitter;
+
+import org.apache.ibatis.cache.impl.PerpetualCache;
+
+/**
+ * Cache that counts {@link #clear()} calls over all instances
+ *
+ * @author Vitalii Tymchyshyn
+ */
+public class CountingCache extends PerpetualCache {
+    static int clears;
+
+    public CountingCache(String id) {
+        super(id);
+    }
+
+    @Override
+    public void clear() {
+        clears++;
+        super.clear();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+   Copyright 2014 Luxoft
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+
+ */
+package com.luxoft.mybatis.splitter;
+
+import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.TransactionalCacheManager;
+import org.apache.ibatis.executor.CachingExecutor;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.*;
+
+import java.lang.reflect.Field;
+import java.util.Properties;
+
+/**
+ * Counts cache flushes requested through caching executor. Wraps it, so that plugins configured after this one
+ * don't see caching executor itself.
+ *
+ * @author Vitalii Tymchyshyn
+ */
+@Intercepts({@Signature(
+        type = Executor.class,
+        method= "update",
+        args = {MappedStatement.class, Object.class}
+)})
+public class CountingCacheManagerPlugin implements Interceptor {
+    static int clears;
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        return invocation.proceed();
+    }
+
+    @Override
+    public Object plugin(Object target) {
+        if (!(target instanceof CachingExecutor)) {
+            return target;
+        }
+        try {
+            Field tcm = CachingExecutor.class.getDeclaredField("tcm");
+            tcm.setAccessible(true);
+            tcm.set(target, new TransactionalCacheManager() {
+                @Override
+                public void clear(Cache cache) {
+                    clears++;
+                    super.clear(cache);
+                }
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return Plugin.wrap(target, this);
+    }
+
+    @Override
+    public void setProperties(Properties properties) {
+    }
+}
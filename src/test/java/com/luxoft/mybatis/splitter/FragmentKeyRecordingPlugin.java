@@ -0,0 +1,59 @@
+/*
+   Copyright 2014 Luxoft
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+
+ */
+package com.luxoft.mybatis.splitter;
+
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Records statement keys of fragments sent by {@link UpdateSplitterPlugin} to executor
+ *
+ * @author Vitalii Tymchyshyn
+ */
+@Intercepts({@Signature(
+        type = Executor.class,
+        method= "update",
+        args = {MappedStatement.class, Object.class}
+)})
+public class FragmentKeyRecordingPlugin implements Interceptor {
+    static final List<ReusingBatchExecutor.PreparedStatementKey> keys =
+            new ArrayList<ReusingBatchExecutor.PreparedStatementKey>();
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        MappedStatement ms = (MappedStatement) invocation.getArgs()[0];
+        if (ms.getSqlSource() instanceof SwitchingSqlSource) {
+            keys.add(((SwitchingSqlSource) ms.getSqlSource()).getStatementKey());
+        }
+        return invocation.proceed();
+    }
+
+    @Override
+    public Object plugin(Object target) {
+        return target instanceof Executor ? Plugin.wrap(target, this) : target;
+    }
+
+    @Override
+    public void setProperties(Properties properties) {
+    }
+}
@@ -17,11 +17,22 @@
  */
 package com.luxoft.mybatis.splitter;
 
+import org.apache.ibatis.exceptions.PersistenceException;
+import org.apache.ibatis.executor.ExecutorException;
+import org.apache.ibatis.builder.xml.XMLMapperBuilder;
 import org.apache.ibatis.io.Resources;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.scripting.defaults.RawSqlSource;
+import org.apache.ibatis.session.Configuration;
 import org.apache.ibatis.session.ExecutorType;
 import org.apache.ibatis.session.SqlSession;
 import org.apache.ibatis.session.SqlSessionFactory;
 import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.session.defaults.DefaultSqlSessionFactory;
+import org.apache.ibatis.transaction.jdbc.JdbcTransaction;
+import org.easymock.EasyMock;
+import org.easymock.IMocksControl;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -34,7 +45,9 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 import static org.easymock.EasyMock.expect;
 import static org.unitils.easymock.EasyMockUnitils.replay;
@@ -105,4 +118,244 @@ public class UpdateSplitterPluginTest {
         doInsert(sqlSession);
         sqlSession.close();
     }
+
+    @Test
+    public void cacheFlushTest() throws IOException {
+        SqlSessionFactory sqlSessionFactory = new SqlSessionFactoryBuilder().build(
+                Resources.getResourceAsStream("cache-configuration.xml"));
+        SqlSession sqlSession = sqlSessionFactory.openSession(ExecutorType.BATCH);
+        sqlSession.update("com.luxoft.mybatis.splitter.cache.makeTable");
+        sqlSession.commit();
+        CountingCacheManagerPlugin.clears = 0;
+        CountingCache.clears = 0;
+        Map<String, Object> param = new HashMap<String, Object>();
+        param.put("first", "first");
+        param.put("other", Arrays.asList("second", "third"));
+        sqlSession.insert("com.luxoft.mybatis.splitter.cache.multy", param);
+        Assert.assertEquals(1, CountingCacheManagerPlugin.clears);
+        sqlSession.commit();
+        Assert.assertEquals(1, CountingCache.clears);
+        Assert.assertEquals(Arrays.asList("first", "second", "third"),
+                sqlSession.selectList("com.luxoft.mybatis.splitter.cache.get"));
+        sqlSession.update("com.luxoft.mybatis.splitter.cache.dropTable");
+        sqlSession.commit();
+        sqlSession.close();
+    }
+
+    @Test
+    public void cacheDisabledMockTest() throws IOException, SQLException {
+        expect(connection.getAutoCommit()).andStubReturn(false);
+        expect(connection.prepareStatement("insert into cached values(?)")).andReturn(statement);
+        statement.setString(1, "first");
+        statement.addBatch();
+        statement.setString(1, "second");
+        statement.addBatch();
+        expect(statement.executeBatch()).andStubReturn(new int[]{1});
+        statement.close();
+        connection.setAutoCommit(true);
+        connection.rollback();
+        connection.close();
+
+        replay();
+
+        SqlSessionFactory sqlSessionFactory = new SqlSessionFactoryBuilder().build(
+                Resources.getResourceAsStream("cache-disabled-configuration.xml"));
+        SqlSession sqlSession = sqlSessionFactory.openSession(ExecutorType.BATCH, connection);
+        Map<String, Object> param = new HashMap<String, Object>();
+        param.put("first", "first");
+        param.put("other", Arrays.asList("second"));
+        sqlSession.insert("com.luxoft.mybatis.splitter.cache.multy", param);
+        sqlSession.flushStatements();
+        sqlSession.close();
+    }
+
+    @Test
+    public void fragmentKeysTest() throws IOException {
+        SqlSessionFactory sqlSessionFactory = new SqlSessionFactoryBuilder().build(
+                Resources.getResourceAsStream("key-configuration.xml"));
+        SqlSession sqlSession = sqlSessionFactory.openSession(ExecutorType.BATCH);
+        sqlSession.update("makeTable");
+        sqlSession.flushStatements();
+        FragmentKeyRecordingPlugin.keys.clear();
+        doInsert(sqlSession);
+        doInsert(sqlSession);
+        Map<String, Object> param = new HashMap<String, Object>();
+        param.put("first", "fourth");
+        param.put("second", "fifth");
+        sqlSession.insert("multyStatic", param);
+        sqlSession.insert("multyStatic", param);
+        sqlSession.flushStatements();
+        List<ReusingBatchExecutor.PreparedStatementKey> keys = FragmentKeyRecordingPlugin.keys;
+        Assert.assertEquals(10, keys.size());
+        for (int i = 1; i < 6; i++) {
+            Assert.assertSame(keys.get(0), keys.get(i));
+        }
+        Assert.assertNotSame(keys.get(0), keys.get(6));
+        for (int i = 7; i < 10; i++) {
+            Assert.assertSame(keys.get(6), keys.get(i));
+        }
+        Assert.assertEquals(10, sqlSession.selectList("get").size());
+        sqlSession.update("dropTable");
+        sqlSession.flushStatements();
+        sqlSession.close();
+    }
+
+    @Test
+    public void adHocStatementMockTest() throws IOException, SQLException {
+        expect(connection.getAutoCommit()).andStubReturn(false);
+        expect(connection.prepareStatement("insert into test values(?)")).andReturn(statement);
+        statement.setString(1, "first");
+        statement.addBatch();
+        statement.setString(1, "second");
+        statement.addBatch();
+        expect(statement.executeBatch()).andStubReturn(new int[]{1});
+        statement.close();
+        connection.setAutoCommit(true);
+        connection.close();
+
+        replay();
+
+        Configuration configuration = new SqlSessionFactoryBuilder().build(
+                Resources.getResourceAsStream("configuration.xml")).getConfiguration();
+        ReusingBatchExecutor executor = new ReusingBatchExecutor(configuration, new JdbcTransaction(connection),
+                false, false);
+        MappedStatement ms = configuration.getMappedStatement("insertOne");
+        executor.update(ms, "first");
+        executor.update(ms, "second");
+        executor.flushStatements();
+        executor.close(false);
+    }
+
+    @Test
+    public void warmUpMockTest() throws IOException, SQLException {
+        warmUpMockTest(false, false);
+    }
+
+    @Test
+    public void warmUpReuseBetweenFlushesMockTest() throws IOException, SQLException {
+        warmUpMockTest(false, true);
+    }
+
+    @Test
+    public void warmUpFailureMockTest() throws IOException, SQLException {
+        warmUpMockTest(true, false);
+    }
+
+    private void warmUpMockTest(boolean failOtherStatement, boolean reuseBetweenFlushes)
+            throws IOException, SQLException {
+        IMocksControl control = EasyMock.createStrictControl();
+        Connection connection = control.createMock(Connection.class);
+        PreparedStatement statement = control.createMock(PreparedStatement.class);
+        PreparedStatement otherStatement = control.createMock(PreparedStatement.class);
+        expect(connection.getAutoCommit()).andStubReturn(false);
+        expect(connection.prepareStatement("insert into test values(?)")).andReturn(statement);
+        if (failOtherStatement) {
+            expect(connection.prepareStatement("insert into test(data) values(?)")).andThrow(new SQLException());
+        } else {
+            expect(connection.prepareStatement("insert into test(data) values(?)")).andReturn(otherStatement);
+        }
+        statement.setString(1, "first");
+        statement.addBatch();
+        statement.setString(1, "second");
+        statement.addBatch();
+        expect(statement.executeBatch()).andReturn(new int[]{1, 1});
+        statement.close();
+        if (!failOtherStatement) {
+            otherStatement.close();
+        }
+        connection.rollback();
+        connection.setAutoCommit(true);
+        connection.close();
+
+        control.replay();
+
+        Properties properties = warmUpProperties(
+                "com.luxoft.mybatis.splitter.multyStatic, com.luxoft.mybatis.splitter.insertTwo");
+        properties.setProperty("reuseBetweenFlushes", String.valueOf(reuseBetweenFlushes));
+        SqlSessionFactory sqlSessionFactory = new SqlSessionFactoryBuilder().build(
+                Resources.getResourceAsStream("warm-up-configuration.xml"), properties);
+        SqlSession sqlSession = sqlSessionFactory.openSession(ExecutorType.BATCH, connection);
+        Map<String, Object> param = new HashMap<String, Object>();
+        param.put("first", "first");
+        param.put("second", "second");
+        sqlSession.insert("multyStatic", param);
+        sqlSession.flushStatements();
+        sqlSession.close();
+
+        control.verify();
+    }
+
+    @Test
+    public void warmUpUnknownStatementTest() throws IOException {
+        warmUpErrorTest("unknown");
+    }
+
+    @Test
+    public void warmUpDynamicStatementTest() throws IOException {
+        warmUpErrorTest("multy");
+    }
+
+    @Test
+    public void warmUpSelectStatementTest() throws IOException {
+        warmUpErrorTest("get");
+    }
+
+    private void warmUpErrorTest(String statements) throws IOException {
+        SqlSessionFactory sqlSessionFactory = new SqlSessionFactoryBuilder().build(
+                Resources.getResourceAsStream("warm-up-configuration.xml"), warmUpProperties(statements));
+        try {
+            sqlSessionFactory.openSession(ExecutorType.BATCH);
+            Assert.fail();
+        } catch (PersistenceException e) {
+            Assert.assertTrue(e.getCause() instanceof ExecutorException);
+        }
+    }
+
+    private Properties warmUpProperties(String statements) {
+        Properties properties = new Properties();
+        properties.setProperty("warmUpStatements", statements);
+        properties.setProperty("reuseBetweenFlushes", "false");
+        return properties;
+    }
+
+    @Test
+    public void staticSplitPlanTest() throws IOException, SQLException {
+        final int[] splits = new int[1];
+        TextSplitter splitter = new TextSplitter() {
+            private final TextSplitter delegate = new RegexpSplitter("\\s*---\\s*");
+
+            @Override
+            public List<String> split(String text) {
+                splits[0]++;
+                return delegate.split(text);
+            }
+        };
+        Configuration configuration = new Configuration();
+        new XMLMapperBuilder(Resources.getResourceAsStream("mapper.xml"), configuration, "mapper.xml",
+                configuration.getSqlFragments()).parse();
+        configuration.addMappedStatement(new MappedStatement.Builder(configuration, "rawStatic",
+                new RawSqlSource(configuration, "insert into test values(#{first}) --- insert into test values(#{second})",
+                        Map.class), SqlCommandType.INSERT).build());
+        UpdateSplitterPlugin plugin = new UpdateSplitterPlugin(splitter);
+        plugin.setProperties(new Properties());
+        configuration.addInterceptor(plugin);
+        Connection niceConnection = EasyMock.createNiceMock(Connection.class);
+        PreparedStatement niceStatement = EasyMock.createNiceMock(PreparedStatement.class);
+        expect(niceConnection.prepareStatement((String) EasyMock.anyObject())).andStubReturn(niceStatement);
+        EasyMock.replay(niceConnection, niceStatement);
+
+        SqlSession sqlSession = new DefaultSqlSessionFactory(configuration).openSession(ExecutorType.BATCH,
+                niceConnection);
+        Map<String, Object> param = new HashMap<String, Object>();
+        param.put("first", "first");
+        param.put("second", "second");
+        for (String statement: Arrays.asList("rawStatic", "multyStatic")) {
+            splits[0] = 0;
+            sqlSession.insert(statement, param);
+            sqlSession.insert(statement, param);
+            sqlSession.insert(statement, param);
+            Assert.assertEquals(1, splits[0]);
+        }
+        sqlSession.close();
+    }
 }